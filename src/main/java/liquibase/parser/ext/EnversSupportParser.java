@@ -1,15 +1,31 @@
 package liquibase.parser.ext;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import liquibase.Contexts;
+import liquibase.LabelExpression;
 import liquibase.change.Change;
 import liquibase.change.core.TagDatabaseChange;
 import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeLogParameters.ChangeLogParameter;
 import liquibase.changelog.ChangeSet;
 import liquibase.changelog.DatabaseChangeLog;
 import liquibase.exception.ChangeLogParseException;
-import liquibase.exception.LiquibaseException;
+import liquibase.exception.UnknownChangelogFormatException;
+import liquibase.logging.LogService;
 import liquibase.parser.ChangeLogParser;
 import liquibase.parser.ChangeLogParserFactory;
 import liquibase.resource.ResourceAccessor;
@@ -23,33 +39,100 @@ public class EnversSupportParser implements ChangeLogParser
 	public static final String ENVERS_SUPPORT_CHANGESET_AUTHOR = "liquibase-envers-support plugin";
 	public static final String VERSION_NAME_AFTER_LAST_TAG = "develop";
 
+	private static final ThreadLocal<Boolean> PARSING = new ThreadLocal<Boolean>();
+	private static final ConcurrentMap<PrewarmKey, PrewarmedChangeLog> PREWARMED_CHANGELOGS = new ConcurrentHashMap<PrewarmKey, PrewarmedChangeLog>();
+
 	@Override
 	public int getPriority()
 	{
 		return PrioritizedService.PRIORITY_DATABASE + 1;
 	}
 
-	@Override
-	public DatabaseChangeLog parse(final String physicalChangeLogLocation, final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor) throws ChangeLogParseException
+	/**
+	 * Same as {@link #prewarm(String, Contexts, LabelExpression, Map, ResourceAccessor)}, without parameters of its own.
+	 */
+	public static Future<DatabaseChangeLog> prewarm(final String physicalChangeLogLocation, final Contexts contexts, final LabelExpression labelExpression, final ResourceAccessor resourceAccessor)
 	{
-		// Unregister ourselves, let the previous parser parse the whole database changelog.
-		// If we do not do this, we will be called again for included changelog files.
-		final ChangeLogParserFactory changeLogParserFactory = ChangeLogParserFactory.getInstance();
-		changeLogParserFactory.unregister(this);
-		try
+		return prewarm(physicalChangeLogLocation, contexts, labelExpression, Collections.<String, Object> emptyMap(), resourceAccessor);
+	}
+
+	/**
+	 * Starts parsing the given changelog and adding the Envers changeSets on a background thread. No database connection is needed for this.
+	 * A later call to {@link #parse(String, ChangeLogParameters, ResourceAccessor)} for the same location uses the result, provided that:
+	 * <ul>
+	 * <li>the resource accessor is of the same class and has the same root, as far as its {@code toString()} tells;</li>
+	 * <li>the contexts and labels are the same;</li>
+	 * <li>every parameter the changelog referenced while it was parsed has the same value. The properties the changelog defines itself do not count, unless they are overridden.</li>
+	 * </ul>
+	 * Otherwise the changelog is parsed inline, as if this method was never called, and a warning lists the parameters that differ.
+	 * The given parameters correspond to the ones set with {@link liquibase.Liquibase#setChangeLogParameter(String, Object)}.
+	 * <p>
+	 * The prewarmed changelog is kept until it is parsed. Cancel the returned future to discard it if Liquibase will not parse it, also when it has already completed.
+	 */
+	public static Future<DatabaseChangeLog> prewarm(final String physicalChangeLogLocation, final Contexts contexts, final LabelExpression labelExpression, final Map<String, ?> parameters, final ResourceAccessor resourceAccessor)
+	{
+		final RecordingChangeLogParameters changeLogParameters = new RecordingChangeLogParameters();
+		changeLogParameters.setContexts(contexts);
+		changeLogParameters.setLabels(labelExpression);
+		for (final Map.Entry<String, ?> parameter : parameters.entrySet())
 		{
+			changeLogParameters.set(parameter.getKey(), parameter.getValue());
+		}
 
-			final ChangeLogParser previousParser;
-			try
+		final PrewarmKey key = new PrewarmKey(physicalChangeLogLocation, resourceAccessor);
+		final PrewarmedChangeLog prewarmedChangeLog = new PrewarmedChangeLog(key, changeLogParameters, new Callable<DatabaseChangeLog>()
+		{
+			@Override
+			public DatabaseChangeLog call() throws ChangeLogParseException
 			{
-				previousParser = changeLogParserFactory.getParser(physicalChangeLogLocation, resourceAccessor);
+				return new EnversSupportParser().parseAndAddEnversChangeSets(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
 			}
-			catch (LiquibaseException e)
+		});
+		PREWARMED_CHANGELOGS.put(key, prewarmedChangeLog);
+
+		final Thread thread = new Thread(prewarmedChangeLog, "liquibase-envers-support prewarm " + physicalChangeLogLocation);
+		thread.setDaemon(true);
+		thread.start();
+
+		return prewarmedChangeLog;
+	}
+
+	@Override
+	public DatabaseChangeLog parse(final String physicalChangeLogLocation, final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor) throws ChangeLogParseException
+	{
+		if (PARSING.get() != null)
+		{
+			// We are called for an included changelog file. Let the previous parser parse it;
+			// the Envers changeSets are added once the whole database changelog has been parsed.
+			return getPreviousParser(physicalChangeLogLocation, resourceAccessor).parse(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
+		}
+
+		final PrewarmedChangeLog prewarmedChangeLog = PREWARMED_CHANGELOGS.remove(new PrewarmKey(physicalChangeLogLocation, resourceAccessor));
+		if (prewarmedChangeLog != null)
+		{
+			final DatabaseChangeLog databaseChangeLog = prewarmedChangeLog.getChangeLog();
+			if (databaseChangeLog != null)
 			{
-				throw new ChangeLogParseException("Could not get previous parser.", e);
+				final Set<String> differingParameters = prewarmedChangeLog.findDifferingParameters(changeLogParameters);
+				if (differingParameters.isEmpty())
+				{
+					return databaseChangeLog;
+				}
+				LogService.getLog(getClass()).warning("Parameters " + differingParameters + " for " + physicalChangeLogLocation + " differ from the prewarmed ones, parsing it again.");
 			}
+		}
 
-			final DatabaseChangeLog databaseChangeLog = previousParser.parse(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
+		return parseAndAddEnversChangeSets(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
+	}
+
+	private DatabaseChangeLog parseAndAddEnversChangeSets(final String physicalChangeLogLocation, final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor) throws ChangeLogParseException
+	{
+		// Mark this thread, so we let the previous parser handle included changelog files.
+		// If we do not do this, we would add Envers changeSets to every included changelog file.
+		PARSING.set(Boolean.TRUE);
+		try
+		{
+			final DatabaseChangeLog databaseChangeLog = getPreviousParser(physicalChangeLogLocation, resourceAccessor).parse(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
 
 			addEnversChangeSets(databaseChangeLog);
 
@@ -57,7 +140,199 @@ public class EnversSupportParser implements ChangeLogParser
 		}
 		finally
 		{
-			changeLogParserFactory.register(this);
+			PARSING.remove();
+		}
+	}
+
+	private ChangeLogParser getPreviousParser(final String physicalChangeLogLocation, final ResourceAccessor resourceAccessor) throws ChangeLogParseException
+	{
+		final ChangeLogParser previousParser = findPreviousParser(physicalChangeLogLocation, resourceAccessor);
+		if (previousParser == null)
+		{
+			throw new ChangeLogParseException("Could not get previous parser.", new UnknownChangelogFormatException("Cannot find parser that supports " + physicalChangeLogLocation));
+		}
+		return previousParser;
+	}
+
+	/**
+	 * Finds the parser that would be used if we were not registered.
+	 * We do not unregister ourselves from the {@link ChangeLogParserFactory} for this, because a prewarm may be running on another thread.
+	 */
+	private ChangeLogParser findPreviousParser(final String changeLogFile, final ResourceAccessor resourceAccessor)
+	{
+		for (final ChangeLogParser parser : ChangeLogParserFactory.getInstance().getParsers())
+		{
+			if (!(parser instanceof EnversSupportParser) && parser.supports(changeLogFile, resourceAccessor))
+			{
+				return parser;
+			}
+		}
+		return null;
+	}
+
+	private static String describe(final Object contextsOrLabels)
+	{
+		return contextsOrLabels == null ? "" : contextsOrLabels.toString();
+	}
+
+	private static boolean equal(final Object first, final Object second)
+	{
+		return first == null ? second == null : first.equals(second);
+	}
+
+	/**
+	 * Remembers which parameters are looked up while the changelog is parsed, so only those have to match when the prewarmed changelog is used.
+	 */
+	private static class RecordingChangeLogParameters extends ChangeLogParameters
+	{
+		private final Set<String> referencedKeys = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+		@Override
+		public Object getValue(final String key, final DatabaseChangeLog changeLog)
+		{
+			referencedKeys.add(key);
+			return super.getValue(key, changeLog);
+		}
+	}
+
+	/**
+	 * Identifies a prewarmed changelog. Resource accessors do not implement equals, so they are compared by class and by {@code toString()},
+	 * which shows the root for the resource accessors of Liquibase itself. That way a new resource accessor for the same root still matches.
+	 */
+	private static class PrewarmKey
+	{
+		private final String physicalChangeLogLocation;
+		private final String resourceAccessor;
+
+		private PrewarmKey(final String physicalChangeLogLocation, final ResourceAccessor resourceAccessor)
+		{
+			this.physicalChangeLogLocation = physicalChangeLogLocation;
+			this.resourceAccessor = resourceAccessor.getClass().getName() + " " + resourceAccessor;
+		}
+
+		@Override
+		public boolean equals(final Object obj)
+		{
+			if (!(obj instanceof PrewarmKey))
+			{
+				return false;
+			}
+			final PrewarmKey other = (PrewarmKey) obj;
+			return physicalChangeLogLocation.equals(other.physicalChangeLogLocation) && resourceAccessor.equals(other.resourceAccessor);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * physicalChangeLogLocation.hashCode() + resourceAccessor.hashCode();
+		}
+	}
+
+	private static class PrewarmedChangeLog extends FutureTask<DatabaseChangeLog>
+	{
+		private final PrewarmKey key;
+		private final RecordingChangeLogParameters changeLogParameters;
+		private final String contexts;
+		private final String labels;
+		private final Map<String, Object> initialValues = new LinkedHashMap<String, Object>();
+
+		private PrewarmedChangeLog(final PrewarmKey key, final RecordingChangeLogParameters changeLogParameters, final Callable<DatabaseChangeLog> callable)
+		{
+			super(callable);
+			this.key = key;
+			this.changeLogParameters = changeLogParameters;
+			this.contexts = describe(changeLogParameters.getContexts());
+			this.labels = describe(changeLogParameters.getLabels());
+			// The first definition of a parameter wins, like in ChangeLogParameters itself
+			for (final ChangeLogParameter parameter : changeLogParameters.getChangeLogParameters())
+			{
+				if (!initialValues.containsKey(parameter.getKey()))
+				{
+					initialValues.put(parameter.getKey(), parameter.getValue());
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning)
+		{
+			// Discard the prewarmed changelog, so it is not kept around until a parse that never comes
+			PREWARMED_CHANGELOGS.remove(key, this);
+			return super.cancel(mayInterruptIfRunning);
+		}
+
+		/**
+		 * @return the prewarmed changelog, or null if the prewarm was cancelled
+		 */
+		private DatabaseChangeLog getChangeLog() throws ChangeLogParseException
+		{
+			try
+			{
+				return get();
+			}
+			catch (CancellationException e)
+			{
+				return null;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new ChangeLogParseException("Interrupted while waiting for the prewarmed changelog.", e);
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof ChangeLogParseException)
+				{
+					throw (ChangeLogParseException) e.getCause();
+				}
+				throw new ChangeLogParseException("Could not prewarm changelog.", e.getCause());
+			}
+		}
+
+		/**
+		 * Compares the contexts, labels and referenced parameters with the ones Liquibase is about to parse the changelog with.
+		 * Liquibase has not parsed the changelog with its parameters yet, so they only hold the parameters that were set from the outside.
+		 */
+		private Set<String> findDifferingParameters(final ChangeLogParameters liquibaseChangeLogParameters)
+		{
+			final Set<String> result = new LinkedHashSet<String>();
+			if (!contexts.equals(describe(liquibaseChangeLogParameters.getContexts())))
+			{
+				result.add("contexts");
+			}
+			if (!labels.equals(describe(liquibaseChangeLogParameters.getLabels())))
+			{
+				result.add("labels");
+			}
+
+			final Set<String> referencedKeys;
+			synchronized (changeLogParameters.referencedKeys)
+			{
+				referencedKeys = new LinkedHashSet<String>(changeLogParameters.referencedKeys);
+			}
+			for (final String referencedKey : referencedKeys)
+			{
+				if (!equal(initialValues.get(referencedKey), liquibaseChangeLogParameters.getValue(referencedKey, null)) || isDatabaseSpecific(referencedKey))
+				{
+					result.add(referencedKey);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * The prewarm has no database, so the value of a property that is only valid for some databases may have been resolved differently.
+		 */
+		private boolean isDatabaseSpecific(final String key)
+		{
+			for (final ChangeLogParameter parameter : changeLogParameters.getChangeLogParameters())
+			{
+				if (parameter.getKey().equals(key) && parameter.getValidDatabases() != null && !parameter.getValidDatabases().isEmpty())
+				{
+					return true;
+				}
+			}
+			return false;
 		}
 	}
 
@@ -148,7 +423,7 @@ public class EnversSupportParser implements ChangeLogParser
 		final String contextList = StringUtils.join(enversTemplateChangeSet.getContexts().getContexts(), ",");
 		final String dbmsList = StringUtils.join(enversTemplateChangeSet.getDbmsSet(), ",");
 
-		final EnversSupportChangeSet enversChangeSet = new EnversSupportChangeSet(changeSetId, ENVERS_SUPPORT_CHANGESET_AUTHOR, enversTemplateChangeSet.isAlwaysRun(), enversTemplateChangeSet.isRunOnChange(), afterChangeSet.getFilePath(), contextList, dbmsList, enversTemplateChangeSet.isRunInTransaction(), enversTemplateChangeSet.getObjectQuotingStrategy(), changeSetChangeLog);
+		final EnversSupportChangeSet enversChangeSet = new EnversSupportChangeSet(changeSetId, ENVERS_SUPPORT_CHANGESET_AUTHOR, enversTemplateChangeSet.isAlwaysRun(), enversTemplateChangeSet.isRunOnChange(), afterChangeSet.getFilePath(), contextList, dbmsList, enversTemplateChangeSet.isRunInTransaction(), enversTemplateChangeSet.getObjectQuotingStrategy(), changeSetChangeLog, previousVersion, currentVersion);
 
 		for (Change change : enversTemplateChangeSet.getChanges())
 		{
@@ -172,19 +447,6 @@ public class EnversSupportParser implements ChangeLogParser
 	@Override
 	public boolean supports(final String changeLogFile, final ResourceAccessor resourceAccessor)
 	{
-		final ChangeLogParserFactory changeLogParserFactory = ChangeLogParserFactory.getInstance();
-		changeLogParserFactory.unregister(this);
-		try
-		{
-			return changeLogParserFactory.getParser(changeLogFile, resourceAccessor).supports(changeLogFile, resourceAccessor);
-		}
-		catch (LiquibaseException e)
-		{
-			return false;
-		}
-		finally
-		{
-			changeLogParserFactory.register(this);
-		}
+		return findPreviousParser(changeLogFile, resourceAccessor) != null;
 	}
 }
\ No newline at end of file
@@ -23,9 +23,29 @@ import liquibase.exception.MigrationFailedException;
 
 public class EnversSupportChangeSet extends ChangeSet
 {
+	private final String previousVersion;
+	private final String currentVersion;
+
 	public EnversSupportChangeSet(final String id, final String author, final boolean alwaysRun, final boolean runOnChange, final String filePath, final String contextList, final String dbmsList, final boolean runInTransaction, final ObjectQuotingStrategy quotingStrategy, final DatabaseChangeLog databaseChangeLog)
+	{
+		this(id, author, alwaysRun, runOnChange, filePath, contextList, dbmsList, runInTransaction, quotingStrategy, databaseChangeLog, null, null);
+	}
+
+	public EnversSupportChangeSet(final String id, final String author, final boolean alwaysRun, final boolean runOnChange, final String filePath, final String contextList, final String dbmsList, final boolean runInTransaction, final ObjectQuotingStrategy quotingStrategy, final DatabaseChangeLog databaseChangeLog, final String previousVersion, final String currentVersion)
 	{
 		super(id, author, alwaysRun, runOnChange, filePath, contextList, dbmsList, runInTransaction, quotingStrategy, databaseChangeLog);
+		this.previousVersion = previousVersion;
+		this.currentVersion = currentVersion;
+	}
+
+	public String getPreviousVersion()
+	{
+		return previousVersion;
+	}
+
+	public String getCurrentVersion()
+	{
+		return currentVersion;
 	}
 
 	@Override
@@ -56,7 +76,7 @@ public class EnversSupportChangeSet extends ChangeSet
 		}
 	}
 
-	private boolean isTagDatabaseChangeSet(final ChangeSet changeSet)
+	static boolean isTagDatabaseChangeSet(final ChangeSet changeSet)
 	{
 		final List<Change> changes = changeSet.getChanges();
 		for (final Change change : changes)
@@ -0,0 +1,489 @@
+package org.jurr.liquibase.envers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.AbstractChangeExecListener;
+import liquibase.database.Database;
+import liquibase.database.OfflineConnection;
+import liquibase.datatype.DataTypeFactory;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.executor.Executor;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.LoggingExecutor;
+import liquibase.logging.LogService;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.sql.visitor.SqlVisitor;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.CreateTableStatement;
+import liquibase.statement.core.InsertStatement;
+import liquibase.structure.core.Table;
+
+/**
+ * Records the wall time, statement count and changeSet count of every release during an update.
+ * A release window starts with the Envers changeSet after a tag and ends with the next tag, so its timing is recorded under the version of that next tag.
+ * ChangeSets before the first Envers changeSet are not part of any release window.
+ * A release window in which only the tag ran, because there was nothing else to apply, is not recorded.
+ * <p>
+ * Statements are counted by wrapping the executor of the database while a changeSet runs, so changes do not have to generate their statements a second time.
+ * <p>
+ * The timings are kept in memory during the update, so recording them does not interfere with its transactions. Call {@link #flush(Database)} after the update to write them.
+ * Timings are inserted into a history table, which is created when it does not exist yet. When the update only generated SQL, they are appended to a CSV file instead.
+ */
+public class ReleaseTimingChangeExecListener extends AbstractChangeExecListener
+{
+	public static final String DEFAULT_TABLE_NAME = "ENVERS_RELEASE_TIMING";
+	public static final String DEFAULT_OFFLINE_FILE_NAME = "envers-release-timing.csv";
+
+	private final String tableName;
+	private final File offlineFile;
+
+	private final List<ReleaseTiming> releaseTimings = new ArrayList<ReleaseTiming>();
+	private final Map<ChangeSet, EnversSupportChangeSet> releaseWindows = new IdentityHashMap<ChangeSet, EnversSupportChangeSet>();
+	private DatabaseChangeLog releaseWindowsChangeLog;
+	private ReleaseTiming currentReleaseTiming;
+	private EnversSupportChangeSet currentReleaseWindow;
+	private Executor countedExecutor;
+	private Executor countingExecutor;
+	private int writtenReleaseTimings;
+	private boolean tableChecked;
+
+	public ReleaseTimingChangeExecListener()
+	{
+		this(DEFAULT_TABLE_NAME, new File(DEFAULT_OFFLINE_FILE_NAME));
+	}
+
+	public ReleaseTimingChangeExecListener(final String tableName, final File offlineFile)
+	{
+		this.tableName = tableName;
+		this.offlineFile = offlineFile;
+	}
+
+	public static class ReleaseTiming
+	{
+		private final String previousVersion;
+		private final String currentVersion;
+		private final Date dateExecuted = new Date();
+		private final long startNanos = System.nanoTime();
+		private long durationMillis;
+		private int changeSetCount;
+		private int statementCount;
+		private boolean changesApplied;
+		private boolean databaseUpdated = true;
+
+		private ReleaseTiming(final String previousVersion, final String currentVersion)
+		{
+			this.previousVersion = previousVersion;
+			this.currentVersion = currentVersion;
+		}
+
+		public String getPreviousVersion()
+		{
+			return previousVersion;
+		}
+
+		public String getCurrentVersion()
+		{
+			return currentVersion;
+		}
+
+		public Date getDateExecuted()
+		{
+			return dateExecuted;
+		}
+
+		public long getDurationMillis()
+		{
+			return durationMillis;
+		}
+
+		public int getChangeSetCount()
+		{
+			return changeSetCount;
+		}
+
+		public int getStatementCount()
+		{
+			return statementCount;
+		}
+	}
+
+	/**
+	 * @return the release windows recorded so far, in the order they ran
+	 */
+	public List<ReleaseTiming> getReleaseTimings()
+	{
+		return Collections.unmodifiableList(releaseTimings);
+	}
+
+	@Override
+	public void willRun(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog, final Database database, final ChangeSet.RunStatus runStatus)
+	{
+		final EnversSupportChangeSet releaseWindow = getReleaseWindow(databaseChangeLog, changeSet);
+		if (currentReleaseWindow != null && currentReleaseWindow != releaseWindow)
+		{
+			// The tag that closes the current release window did not run
+			closeReleaseWindow();
+		}
+		if (currentReleaseWindow == null && releaseWindow != null)
+		{
+			currentReleaseWindow = releaseWindow;
+			currentReleaseTiming = new ReleaseTiming(releaseWindow.getPreviousVersion(), releaseWindow.getCurrentVersion());
+		}
+		if (currentReleaseTiming != null)
+		{
+			startCountingStatements(database);
+		}
+	}
+
+	@Override
+	public void ran(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog, final Database database, final ChangeSet.ExecType execType)
+	{
+		stopCountingStatements(database);
+		if (currentReleaseTiming == null)
+		{
+			return;
+		}
+
+		final boolean tag = EnversSupportChangeSet.isTagDatabaseChangeSet(changeSet);
+		if (execType != ChangeSet.ExecType.SKIPPED)
+		{
+			currentReleaseTiming.changeSetCount++;
+			currentReleaseTiming.changesApplied |= !tag;
+		}
+		if (tag && getReleaseWindow(databaseChangeLog, changeSet) == currentReleaseWindow)
+		{
+			closeReleaseWindow();
+		}
+	}
+
+	@Override
+	public void runFailed(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog, final Database database, final Exception exception)
+	{
+		stopCountingStatements(database);
+	}
+
+	/**
+	 * Writes the timings recorded since the previous flush, including the release window after the last tag, which is still open. Call this after the update has finished.
+	 */
+	public void flush(final Database database)
+	{
+		closeReleaseWindow();
+
+		while (writtenReleaseTimings < releaseTimings.size())
+		{
+			final ReleaseTiming releaseTiming = releaseTimings.get(writtenReleaseTimings++);
+			try
+			{
+				// When the update only generated SQL, the history table must not end up in that SQL, nor be inserted into without it
+				if (!releaseTiming.databaseUpdated || database.getConnection() instanceof OfflineConnection)
+				{
+					appendToFile(releaseTiming);
+				}
+				else
+				{
+					insertIntoTable(database, releaseTiming);
+				}
+			}
+			catch (IOException e)
+			{
+				LogService.getLog(getClass()).warning("Could not record timing of release " + releaseTiming.currentVersion + " in " + offlineFile, e);
+			}
+			catch (LiquibaseException e)
+			{
+				LogService.getLog(getClass()).warning("Could not record timing of release " + releaseTiming.currentVersion + " in " + tableName, e);
+			}
+		}
+	}
+
+	private void closeReleaseWindow()
+	{
+		if (currentReleaseTiming == null)
+		{
+			return;
+		}
+
+		final ReleaseTiming releaseTiming = currentReleaseTiming;
+		releaseTiming.durationMillis = (System.nanoTime() - releaseTiming.startNanos) / 1000000;
+		currentReleaseTiming = null;
+		currentReleaseWindow = null;
+
+		// Otherwise the Envers changeSet was skipped and at most the tag ran in this release window
+		if (releaseTiming.changesApplied)
+		{
+			releaseTimings.add(releaseTiming);
+		}
+	}
+
+	private void startCountingStatements(final Database database)
+	{
+		stopCountingStatements(database);
+
+		countedExecutor = ExecutorService.getInstance().getExecutor(database);
+		currentReleaseTiming.databaseUpdated &= countedExecutor.updatesDatabase();
+		countingExecutor = (Executor) Proxy.newProxyInstance(Executor.class.getClassLoader(), new Class<?>[] { Executor.class }, new StatementCounter(countedExecutor, currentReleaseTiming));
+		// Some changes behave differently when they are not applied to the database, so keep the wrapper recognizable as a LoggingExecutor
+		if (countedExecutor instanceof LoggingExecutor)
+		{
+			countingExecutor = new CountingLoggingExecutor(countingExecutor, database);
+		}
+		ExecutorService.getInstance().setExecutor(database, countingExecutor);
+	}
+
+	private void stopCountingStatements(final Database database)
+	{
+		if (countingExecutor == null)
+		{
+			return;
+		}
+
+		// Leave the executor alone if it was replaced while the changeSet ran
+		if (ExecutorService.getInstance().getExecutor(database) == countingExecutor)
+		{
+			ExecutorService.getInstance().setExecutor(database, countedExecutor);
+		}
+		countingExecutor = null;
+		countedExecutor = null;
+	}
+
+	private EnversSupportChangeSet getReleaseWindow(final DatabaseChangeLog databaseChangeLog, final ChangeSet changeSet)
+	{
+		if (releaseWindowsChangeLog != databaseChangeLog)
+		{
+			releaseWindows.clear();
+			EnversSupportChangeSet releaseWindow = null;
+			for (final ChangeSet candidate : databaseChangeLog.getChangeSets())
+			{
+				if (candidate instanceof EnversSupportChangeSet)
+				{
+					releaseWindow = (EnversSupportChangeSet) candidate;
+				}
+				if (releaseWindow != null)
+				{
+					releaseWindows.put(candidate, releaseWindow);
+				}
+				if (EnversSupportChangeSet.isTagDatabaseChangeSet(candidate))
+				{
+					// The tag closes the release window it belongs to
+					releaseWindow = null;
+				}
+			}
+			releaseWindowsChangeLog = databaseChangeLog;
+		}
+		return releaseWindows.get(changeSet);
+	}
+
+	private void insertIntoTable(final Database database, final ReleaseTiming releaseTiming) throws LiquibaseException
+	{
+		final Executor executor = ExecutorService.getInstance().getExecutor(database);
+		final String catalogName = database.getLiquibaseCatalogName();
+		final String schemaName = database.getLiquibaseSchemaName();
+
+		if (!tableChecked)
+		{
+			if (!SnapshotGeneratorFactory.getInstance().has(new Table(catalogName, schemaName, tableName), database))
+			{
+				final DataTypeFactory dataTypeFactory = DataTypeFactory.getInstance();
+				final CreateTableStatement createTable = new CreateTableStatement(catalogName, schemaName, tableName);
+				createTable.addColumn("CURRENT_VERSION", dataTypeFactory.fromDescription("VARCHAR(255)", database));
+				createTable.addColumn("PREVIOUS_VERSION", dataTypeFactory.fromDescription("VARCHAR(255)", database));
+				createTable.addColumn("DATEEXECUTED", dataTypeFactory.fromDescription("datetime", database));
+				createTable.addColumn("DURATION_MS", dataTypeFactory.fromDescription("BIGINT", database));
+				createTable.addColumn("CHANGESETS", dataTypeFactory.fromDescription("INT", database));
+				createTable.addColumn("STATEMENTS", dataTypeFactory.fromDescription("INT", database));
+				executor.execute(createTable);
+			}
+			tableChecked = true;
+		}
+
+		final InsertStatement insert = new InsertStatement(catalogName, schemaName, tableName);
+		insert.addColumnValue("CURRENT_VERSION", releaseTiming.currentVersion);
+		insert.addColumnValue("PREVIOUS_VERSION", releaseTiming.previousVersion);
+		insert.addColumnValue("DATEEXECUTED", new Timestamp(releaseTiming.dateExecuted.getTime()));
+		insert.addColumnValue("DURATION_MS", releaseTiming.durationMillis);
+		insert.addColumnValue("CHANGESETS", releaseTiming.changeSetCount);
+		insert.addColumnValue("STATEMENTS", releaseTiming.statementCount);
+		executor.execute(insert);
+		database.commit();
+	}
+
+	private void appendToFile(final ReleaseTiming releaseTiming) throws IOException
+	{
+		final boolean writeHeader = !offlineFile.exists() || offlineFile.length() == 0;
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(offlineFile, true), "UTF-8");
+		try
+		{
+			if (writeHeader)
+			{
+				writer.write("CURRENT_VERSION,PREVIOUS_VERSION,DATEEXECUTED,DURATION_MS,CHANGESETS,STATEMENTS\n");
+			}
+			writer.write(releaseTiming.currentVersion + "," + releaseTiming.previousVersion + "," + new Timestamp(releaseTiming.dateExecuted.getTime()) + "," + releaseTiming.durationMillis + "," + releaseTiming.changeSetCount + "," + releaseTiming.statementCount + "\n");
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Counts the statements executed through the executor it is the invocation handler for, and passes every call on to the executor it wraps.
+	 */
+	private static class StatementCounter implements InvocationHandler
+	{
+		private final Executor delegate;
+		private final ReleaseTiming releaseTiming;
+
+		private StatementCounter(final Executor delegate, final ReleaseTiming releaseTiming)
+		{
+			this.delegate = delegate;
+			this.releaseTiming = releaseTiming;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+		{
+			if ("execute".equals(method.getName()) || "update".equals(method.getName()))
+			{
+				releaseTiming.statementCount++;
+			}
+
+			try
+			{
+				return method.invoke(delegate, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Passes every call on to the counting executor, while still being a LoggingExecutor for the changes that check whether the statements are only logged.
+	 */
+	private static class CountingLoggingExecutor extends LoggingExecutor
+	{
+		private final Executor delegate;
+
+		private CountingLoggingExecutor(final Executor delegate, final Database database)
+		{
+			super(null, null, database);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public <T> T queryForObject(final SqlStatement sql, final Class<T> requiredType) throws DatabaseException
+		{
+			return delegate.queryForObject(sql, requiredType);
+		}
+
+		@Override
+		public <T> T queryForObject(final SqlStatement sql, final Class<T> requiredType, final List<SqlVisitor> sqlVisitors) throws DatabaseException
+		{
+			return delegate.queryForObject(sql, requiredType, sqlVisitors);
+		}
+
+		@Override
+		public long queryForLong(final SqlStatement sql) throws DatabaseException
+		{
+			return delegate.queryForLong(sql);
+		}
+
+		@Override
+		public long queryForLong(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException
+		{
+			return delegate.queryForLong(sql, sqlVisitors);
+		}
+
+		@Override
+		public int queryForInt(final SqlStatement sql) throws DatabaseException
+		{
+			return delegate.queryForInt(sql);
+		}
+
+		@Override
+		public int queryForInt(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException
+		{
+			return delegate.queryForInt(sql, sqlVisitors);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public List queryForList(final SqlStatement sql, final Class elementType) throws DatabaseException
+		{
+			return delegate.queryForList(sql, elementType);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public List queryForList(final SqlStatement sql, final Class elementType, final List<SqlVisitor> sqlVisitors) throws DatabaseException
+		{
+			return delegate.queryForList(sql, elementType, sqlVisitors);
+		}
+
+		@Override
+		public List<Map<String, ?>> queryForList(final SqlStatement sql) throws DatabaseException
+		{
+			return delegate.queryForList(sql);
+		}
+
+		@Override
+		public List<Map<String, ?>> queryForList(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException
+		{
+			return delegate.queryForList(sql, sqlVisitors);
+		}
+
+		@Override
+		public void execute(final SqlStatement sql) throws DatabaseException
+		{
+			delegate.execute(sql);
+		}
+
+		@Override
+		public void execute(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException
+		{
+			delegate.execute(sql, sqlVisitors);
+		}
+
+		@Override
+		public int update(final SqlStatement sql) throws DatabaseException
+		{
+			return delegate.update(sql);
+		}
+
+		@Override
+		public int update(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException
+		{
+			return delegate.update(sql, sqlVisitors);
+		}
+
+		@Override
+		public void comment(final String message) throws DatabaseException
+		{
+			delegate.comment(message);
+		}
+
+		@Override
+		public boolean updatesDatabase()
+		{
+			return delegate.updatesDatabase();
+		}
+	}
+}
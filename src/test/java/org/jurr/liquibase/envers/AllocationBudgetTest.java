@@ -0,0 +1,243 @@
+package org.jurr.liquibase.envers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.RuntimeEnvironment;
+import liquibase.change.Change;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.ChangeSet.ExecType;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.parser.ChangeLogParser;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.xml.XMLChangeLogSAXParser;
+import liquibase.parser.ext.EnversSupportParser;
+import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+import liquibase.servicelocator.PrioritizedService;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Measures the number of bytes allocated per operation on the plugin's hot paths, using the thread allocation counters of the JVM.
+ * An operation fails when it allocates more than its budget in allocation-budgets.properties. When an increase is intended, record the new value printed by the test there.
+ * The numbers differ between JDKs, so budgets are recorded per Java specification version. On a JDK without budgets the test is skipped.
+ * <p>
+ * Surefire runs this test in its own JVM with escape analysis disabled, so the numbers do not depend on which other tests ran first or on which allocations the JIT eliminated.
+ */
+public class AllocationBudgetTest
+{
+	private static final String BUDGETS_RESOURCE = "/allocation-budgets.properties";
+	private static final String SYNTHETIC_CHANGELOG_SUFFIX = ".synthetic";
+	private static final String JAVA_SPECIFICATION_VERSION = System.getProperty("java.specification.version");
+
+	private static final int WARM_UP_ITERATIONS = 2000;
+	private static final int MEASURED_ITERATIONS = 200;
+
+	private static final Properties BUDGETS = new Properties();
+	private static final SyntheticChangeLogParser SYNTHETIC_CHANGELOG_PARSER = new SyntheticChangeLogParser();
+
+	private static com.sun.management.ThreadMXBean threadMXBean;
+	private static FileSystemResourceAccessor resourceAccessor;
+	private static Database database;
+
+	private interface Operation
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * Hands out a changelog that was parsed in advance, so parsing it again with the {@link EnversSupportParser} only measures the injection of the Envers changeSets.
+	 * The changeSets of the changelog are restored first, undoing the previous injection.
+	 */
+	private static class SyntheticChangeLogParser implements ChangeLogParser
+	{
+		private DatabaseChangeLog databaseChangeLog;
+		private List<ChangeSet> changeSets;
+
+		@Override
+		public int getPriority()
+		{
+			return PrioritizedService.PRIORITY_DATABASE;
+		}
+
+		@Override
+		public DatabaseChangeLog parse(final String physicalChangeLogLocation, final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor) throws ChangeLogParseException
+		{
+			databaseChangeLog.getChangeSets().clear();
+			databaseChangeLog.getChangeSets().addAll(changeSets);
+			return databaseChangeLog;
+		}
+
+		@Override
+		public boolean supports(final String changeLogFile, final ResourceAccessor resourceAccessor)
+		{
+			return changeLogFile.endsWith(SYNTHETIC_CHANGELOG_SUFFIX);
+		}
+	}
+
+	@BeforeClass
+	public static void setUp() throws Exception
+	{
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+		// Without its own fork, for instance when selected with -Dtest, the budgets do not apply
+		assumeTrue(ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-XX:-DoEscapeAnalysis"));
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+		final InputStream budgets = AllocationBudgetTest.class.getResourceAsStream(BUDGETS_RESOURCE);
+		try
+		{
+			BUDGETS.load(budgets);
+		}
+		finally
+		{
+			budgets.close();
+		}
+		assumeTrue("No allocation budgets recorded for Java " + JAVA_SPECIFICATION_VERSION, hasBudgetsForThisJava());
+
+		resourceAccessor = new FileSystemResourceAccessor(Paths.get("src/test/resources/allocationBudget").toAbsolutePath().toString());
+
+		database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(DriverManager.getConnection("jdbc:h2:mem:" + AllocationBudgetTest.class.getSimpleName())));
+		ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).init();
+
+		ChangeLogParserFactory.getInstance().register(SYNTHETIC_CHANGELOG_PARSER);
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception
+	{
+		ChangeLogParserFactory.getInstance().unregister(SYNTHETIC_CHANGELOG_PARSER);
+		if (database != null)
+		{
+			database.close();
+		}
+	}
+
+	@Test
+	public void testInjection() throws Exception
+	{
+		SYNTHETIC_CHANGELOG_PARSER.databaseChangeLog = new XMLChangeLogSAXParser().parse("releases.xml", new ChangeLogParameters(), resourceAccessor);
+		SYNTHETIC_CHANGELOG_PARSER.changeSets = new ArrayList<ChangeSet>(SYNTHETIC_CHANGELOG_PARSER.databaseChangeLog.getChangeSets());
+
+		assertWithinBudget("injection", new Operation()
+		{
+			@Override
+			public void run() throws Exception
+			{
+				new EnversSupportParser().parse("releases" + SYNTHETIC_CHANGELOG_SUFFIX, new ChangeLogParameters(), resourceAccessor);
+			}
+		});
+	}
+
+	@Test
+	public void testSkipEvaluation() throws Exception
+	{
+		final DatabaseChangeLog databaseChangeLog = new EnversSupportParser().parse("skipped.xml", new ChangeLogParameters(), resourceAccessor);
+		databaseChangeLog.setRuntimeEnvironment(new RuntimeEnvironment(database, new Contexts("core"), new LabelExpression()));
+		final EnversSupportChangeSet enversChangeSet = findEnversChangeSet(databaseChangeLog);
+
+		// The changeSets after the Envers changeSet all have another context, so every one of them is evaluated before it is skipped
+		assertEquals(ExecType.SKIPPED, enversChangeSet.execute(databaseChangeLog, database));
+
+		assertWithinBudget("skipEvaluation", new Operation()
+		{
+			@Override
+			public void run() throws Exception
+			{
+				enversChangeSet.execute(databaseChangeLog, database);
+			}
+		});
+	}
+
+	@Test
+	public void testStatementGeneration() throws Exception
+	{
+		final DatabaseChangeLog databaseChangeLog = new EnversSupportParser().parse("releases.xml", new ChangeLogParameters(), resourceAccessor);
+		final EnversSupportChangeSet enversChangeSet = findEnversChangeSet(databaseChangeLog);
+
+		assertWithinBudget("statementGeneration", new Operation()
+		{
+			@Override
+			public void run() throws Exception
+			{
+				for (final Change change : enversChangeSet.getChanges())
+				{
+					change.generateStatements(database);
+				}
+				for (final Change change : enversChangeSet.getRollback().getChanges())
+				{
+					change.generateStatements(database);
+				}
+			}
+		});
+	}
+
+	private void assertWithinBudget(final String operationName, final Operation operation) throws Exception
+	{
+		final String budget = BUDGETS.getProperty(operationName + "." + JAVA_SPECIFICATION_VERSION);
+		assertNotNull("No allocation budget recorded for " + operationName + " on Java " + JAVA_SPECIFICATION_VERSION, budget);
+
+		// Let the JIT settle first, so one-time allocations such as class loading are not measured.
+		// Until the hot paths are compiled they allocate more, so the warm-up is long enough for that.
+		for (int i = 0; i < WARM_UP_ITERATIONS; i++)
+		{
+			operation.run();
+		}
+
+		final long threadId = Thread.currentThread().getId();
+		final long start = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_ITERATIONS; i++)
+		{
+			operation.run();
+		}
+		final long bytesPerOperation = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / MEASURED_ITERATIONS;
+
+		System.out.println(String.format("%s: %d bytes allocated per operation (budget %s)", operationName, bytesPerOperation, budget));
+		assertTrue(String.format("%s allocated %d bytes per operation, budget is %s", operationName, bytesPerOperation, budget), bytesPerOperation <= Long.parseLong(budget));
+	}
+
+	private static boolean hasBudgetsForThisJava()
+	{
+		for (final String key : BUDGETS.stringPropertyNames())
+		{
+			if (key.endsWith("." + JAVA_SPECIFICATION_VERSION))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static EnversSupportChangeSet findEnversChangeSet(final DatabaseChangeLog databaseChangeLog)
+	{
+		for (final ChangeSet changeSet : databaseChangeLog.getChangeSets())
+		{
+			if (changeSet instanceof EnversSupportChangeSet)
+			{
+				return (EnversSupportChangeSet) changeSet;
+			}
+		}
+		throw new AssertionError("No Envers changeSet in " + databaseChangeLog.getFilePath());
+	}
+}
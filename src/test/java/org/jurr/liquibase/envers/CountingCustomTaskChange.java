@@ -0,0 +1,42 @@
+package org.jurr.liquibase.envers;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Custom task that only counts how often it is executed.
+ */
+public class CountingCustomTaskChange implements CustomTaskChange
+{
+	static int executions;
+
+	@Override
+	public void execute(final Database database)
+	{
+		executions++;
+	}
+
+	@Override
+	public String getConfirmationMessage()
+	{
+		return "Counted execution " + executions;
+	}
+
+	@Override
+	public void setUp()
+	{
+	}
+
+	@Override
+	public void setFileOpener(final ResourceAccessor resourceAccessor)
+	{
+	}
+
+	@Override
+	public ValidationErrors validate(final Database database)
+	{
+		return new ValidationErrors();
+	}
+}
@@ -3,23 +3,35 @@ package org.jurr.liquibase.envers;
 import static org.junit.Assert.assertEquals;
 
 import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import liquibase.Contexts;
+import liquibase.LabelExpression;
 import liquibase.Liquibase;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.OfflineConnection;
 import liquibase.exception.LiquibaseException;
+import liquibase.parser.ext.EnversSupportParser;
+import liquibase.resource.ClassLoaderResourceAccessor;
 import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.resource.ResourceAccessor;
 import org.junit.Test;
 
 public class EnverSupportParserTest
 {
 	private static final String SQL_UPDATE_CHANGESET_COMMENT = "-- Changeset ";
 	private static final String SQL_ROLLBACK_CHANGESET_COMMENT = "-- Rolling Back ChangeSet: ";
+	private static final Path PREWARM_BASEDIR = Paths.get("src/test/resources/testWithMultipleTags");
 
 	@Test
 	public void testWithoutTag() throws Exception
@@ -249,6 +261,113 @@ public class EnverSupportParserTest
 		assertEquals(2, rollbackChangeSets.size());
 	}
 
+	@Test
+	public void testWithPrewarmedChangeLog() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		prewarmWithoutLastChangeSet(new Contexts(), Collections.<String, Object> emptyMap(), liquibase.getResourceAccessor());
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals("master.xml::Test 1::JUnit", updateChangeSets.get(0));
+		assertEquals("master.xml::Tag 1.0.0::liquibase-db-release", updateChangeSets.get(1));
+		assertEquals("master.xml::Envers revision for version 2.0.0::liquibase-envers-support plugin", updateChangeSets.get(2));
+		assertEquals("master.xml::Test 2::JUnit", updateChangeSets.get(3));
+		assertEquals("master.xml::Tag 2.0.0::liquibase-db-release", updateChangeSets.get(4));
+		assertEquals(5, updateChangeSets.size());
+	}
+
+	@Test
+	public void testWithPrewarmedChangeLogWithDifferentContexts() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		prewarmWithoutLastChangeSet(new Contexts("other"), Collections.<String, Object> emptyMap(), liquibase.getResourceAccessor());
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals("master.xml::Envers revision for version develop::liquibase-envers-support plugin", updateChangeSets.get(5));
+		assertEquals("master.xml::Test 3::JUnit", updateChangeSets.get(6));
+		assertEquals(7, updateChangeSets.size());
+	}
+
+	@Test
+	public void testWithPrewarmedChangeLogWithDifferentReferencedParameter() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		prewarmWithoutLastChangeSet(new Contexts(), Collections.<String, Object> singletonMap("nowTimestamp", "NOW()"), liquibase.getResourceAccessor());
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals(7, updateChangeSets.size());
+	}
+
+	@Test
+	public void testWithPrewarmedChangeLogWithSameReferencedParameter() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		liquibase.setChangeLogParameter("nowTimestamp", "NOW()");
+		prewarmWithoutLastChangeSet(new Contexts(), Collections.<String, Object> singletonMap("nowTimestamp", "NOW()"), liquibase.getResourceAccessor());
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals(5, updateChangeSets.size());
+	}
+
+	@Test
+	public void testWithPrewarmedChangeLogWithUnreferencedParameter() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		prewarmWithoutLastChangeSet(new Contexts(), Collections.<String, Object> singletonMap("unused", "value"), liquibase.getResourceAccessor());
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals(5, updateChangeSets.size());
+	}
+
+	@Test
+	public void testWithPrewarmedChangeLogWithNewResourceAccessorForSameRoot() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		prewarmWithoutLastChangeSet(new Contexts(), Collections.<String, Object> emptyMap(), new FileSystemResourceAccessor(PREWARM_BASEDIR.toAbsolutePath().toString()));
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals(5, updateChangeSets.size());
+	}
+
+	@Test
+	public void testWithPrewarmedChangeLogWithDifferentResourceAccessor() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		final URLClassLoader classLoader = new URLClassLoader(new URL[] { PREWARM_BASEDIR.toUri().toURL() });
+		final Future<DatabaseChangeLog> prewarmedChangeLog = prewarmWithoutLastChangeSet(new Contexts(), Collections.<String, Object> emptyMap(), new ClassLoaderResourceAccessor(classLoader));
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals(7, updateChangeSets.size());
+
+		prewarmedChangeLog.cancel(false);
+		classLoader.close();
+	}
+
+	@Test
+	public void testWithCancelledPrewarmedChangeLog() throws Exception
+	{
+		final Liquibase liquibase = initLiquibase(PREWARM_BASEDIR, "master.xml", Files.createTempFile(EnverSupportParserTest.class.getSimpleName(), ".JUNIT.csv"));
+		final Future<DatabaseChangeLog> prewarmedChangeLog = prewarmWithoutLastChangeSet(new Contexts(), Collections.<String, Object> emptyMap(), liquibase.getResourceAccessor());
+
+		// Cancelling a completed prewarm still discards it
+		prewarmedChangeLog.cancel(false);
+
+		final List<String> updateChangeSets = updateSqlToChangeSetList(updateDatabase(liquibase));
+		assertEquals(7, updateChangeSets.size());
+	}
+
+	/**
+	 * Prewarms master.xml and removes the last changeSet from the result, so we can tell whether it is used by Liquibase:
+	 * without it, the Envers changeSet after the last tag is not applied either, and 5 instead of 7 changeSets run.
+	 */
+	private Future<DatabaseChangeLog> prewarmWithoutLastChangeSet(final Contexts contexts, final Map<String, Object> parameters, final ResourceAccessor resourceAccessor) throws Exception
+	{
+		final Future<DatabaseChangeLog> prewarmedChangeLog = EnversSupportParser.prewarm("master.xml", contexts, new LabelExpression(), parameters, resourceAccessor);
+		final List<ChangeSet> prewarmedChangeSets = prewarmedChangeLog.get().getChangeSets();
+		prewarmedChangeSets.remove(prewarmedChangeSets.size() - 1);
+		return prewarmedChangeLog;
+	}
+
 	private List<String> getChangeSetsRunByUpdate(final Path basedir, final String changeLogFile, final Path runChangeLogCsvFile, final String... contexts) throws LiquibaseException
 	{
 		final Liquibase liquibase = initLiquibase(basedir, changeLogFile, runChangeLogCsvFile);
@@ -0,0 +1,338 @@
+package org.jurr.liquibase.envers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.resource.FileSystemResourceAccessor;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs generated changelogs with thousands of releases against an in-memory H2 database, and fails when the throughput drops below the configured thresholds.
+ * Every phase is run twice: once with the Envers template changeSet, and once with the same Envers revision changeSets written out in the changelog itself.
+ * Both run the same SQL, so the difference between the two is the plugin's own overhead, and is reported as the plugin's share.
+ * A single run is too noisy for that, so both variants are run several times, alternating between them, and their medians are compared.
+ * The share can come out negative when the plugin's overhead is smaller than the noise that is left.
+ * The thresholds are deliberately loose, so only large regressions fail the build. They can be tuned with the system properties below.
+ * This runs as an integration test during {@code mvn verify}, so {@code mvn test} stays fast.
+ */
+public class EnversSupportThroughputIT
+{
+	private static final int RELEASES = Integer.getInteger("envers.throughput.releases", 500);
+	private static final int REPETITIONS = Integer.getInteger("envers.throughput.repetitions", 5);
+	private static final int WARM_UP_RELEASES = 50;
+	private static final String EARLY_TAG = "1.0.0";
+
+	private static final double MIN_UPDATE_CHANGESETS_PER_SECOND = Double.parseDouble(System.getProperty("envers.throughput.minUpdateChangeSetsPerSecond", "50"));
+	private static final double MIN_NO_OP_UPDATE_CHANGESETS_PER_SECOND = Double.parseDouble(System.getProperty("envers.throughput.minNoOpUpdateChangeSetsPerSecond", "300"));
+	private static final double MIN_ROLLBACK_CHANGESETS_PER_SECOND = Double.parseDouble(System.getProperty("envers.throughput.minRollbackChangeSetsPerSecond", "50"));
+	private static final double MAX_PLUGIN_SHARE = Double.parseDouble(System.getProperty("envers.throughput.maxPluginShare", "0.5"));
+
+	private static final String MASTER_CHANGELOG = "master.xml";
+
+	private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+	private static final List<Path> CHANGELOG_DIRS = new ArrayList<Path>();
+
+	private static Path withPluginDir;
+	private static Path withoutPluginDir;
+
+	private enum Phase
+	{
+		UPDATE_FROM_EMPTY, NO_OP_UPDATE, ROLLBACK_TO_EARLY_TAG
+	}
+
+	private static final class Measurement
+	{
+		private int changeSets;
+		private long nanos;
+	}
+
+	@BeforeClass
+	public static void generateChangeLogs() throws Exception
+	{
+		withPluginDir = writeChangeLog(RELEASES, true);
+		withoutPluginDir = writeChangeLog(RELEASES, false);
+
+		// Give the JIT a chance before we start measuring
+		final Path warmUpDir = writeChangeLog(WARM_UP_RELEASES, true);
+		for (final Phase phase : Phase.values())
+		{
+			run(warmUpDir, phase);
+		}
+	}
+
+	@AfterClass
+	public static void deleteChangeLogs() throws IOException
+	{
+		for (final Path dir : CHANGELOG_DIRS)
+		{
+			Files.deleteIfExists(dir.resolve(MASTER_CHANGELOG));
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	@Test
+	public void testUpdateFromEmpty() throws Exception
+	{
+		final Measurement withPlugin = measure(Phase.UPDATE_FROM_EMPTY, MIN_UPDATE_CHANGESETS_PER_SECOND);
+
+		// Every release consists of a data changeSet, a tag changeSet and an Envers changeSet, plus the setup and the changeSet after the last tag
+		assertEquals(3 * RELEASES + 5, withPlugin.changeSets);
+	}
+
+	@Test
+	public void testNoOpUpdate() throws Exception
+	{
+		measure(Phase.NO_OP_UPDATE, MIN_NO_OP_UPDATE_CHANGESETS_PER_SECOND);
+	}
+
+	@Test
+	public void testRollbackToEarlyTag() throws Exception
+	{
+		final Measurement withPlugin = measure(Phase.ROLLBACK_TO_EARLY_TAG, MIN_ROLLBACK_CHANGESETS_PER_SECOND);
+
+		// Liquibase rolls back the tag changeSet itself too, so everything from the first tag on is rolled back
+		assertEquals(3 * RELEASES, withPlugin.changeSets);
+	}
+
+	private Measurement measure(final Phase phase, final double minChangeSetsPerSecond) throws Exception
+	{
+		final long[] withoutPluginNanos = new long[REPETITIONS];
+		final long[] withPluginNanos = new long[REPETITIONS];
+		Measurement withPlugin = null;
+		for (int i = 0; i < REPETITIONS; i++)
+		{
+			// Alternate which variant goes first, so a drift in the machine's speed affects both alike
+			final Measurement withoutPlugin;
+			if (i % 2 == 0)
+			{
+				withoutPlugin = run(withoutPluginDir, phase);
+				withPlugin = run(withPluginDir, phase);
+			}
+			else
+			{
+				withPlugin = run(withPluginDir, phase);
+				withoutPlugin = run(withoutPluginDir, phase);
+			}
+			assertEquals("Both changelogs should run the same changeSets", withoutPlugin.changeSets, withPlugin.changeSets);
+			withoutPluginNanos[i] = withoutPlugin.nanos;
+			withPluginNanos[i] = withPlugin.nanos;
+		}
+
+		final long medianWithoutPlugin = median(withoutPluginNanos);
+		final long medianWithPlugin = median(withPluginNanos);
+		final double changeSetsPerSecond = withPlugin.changeSets / (medianWithPlugin / (double) TimeUnit.SECONDS.toNanos(1));
+		final double pluginShare = (medianWithPlugin - medianWithoutPlugin) / (double) medianWithPlugin;
+
+		System.out.println(String.format("%s: %d changeSets in %d ms (%.0f changeSets/s), plugin share %.1f%% (%d ms without plugin), medians of %d runs", phase, withPlugin.changeSets, TimeUnit.NANOSECONDS.toMillis(medianWithPlugin), changeSetsPerSecond, pluginShare * 100, TimeUnit.NANOSECONDS.toMillis(medianWithoutPlugin), REPETITIONS));
+
+		assertTrue(String.format("%s ran %.0f changeSets/s, expected at least %.0f", phase, changeSetsPerSecond, minChangeSetsPerSecond), changeSetsPerSecond >= minChangeSetsPerSecond);
+		assertTrue(String.format("%s spent %.1f%% in the plugin, expected at most %.1f%%", phase, pluginShare * 100, MAX_PLUGIN_SHARE * 100), pluginShare <= MAX_PLUGIN_SHARE);
+
+		return withPlugin;
+	}
+
+	private static long median(final long[] values)
+	{
+		final long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static Measurement run(final Path basedir, final Phase phase) throws LiquibaseException, SQLException
+	{
+		final String url = "jdbc:h2:mem:" + EnversSupportThroughputIT.class.getSimpleName() + DATABASE_COUNTER.incrementAndGet();
+
+		// The in-memory database lives as long as this connection is open
+		final Connection keepAlive = DriverManager.getConnection(url);
+		try
+		{
+			if (phase != Phase.UPDATE_FROM_EMPTY)
+			{
+				final Liquibase liquibase = initLiquibase(basedir, url);
+				try
+				{
+					liquibase.update(new Contexts());
+				}
+				finally
+				{
+					liquibase.getDatabase().close();
+				}
+			}
+
+			final Measurement measurement = new Measurement();
+			final int ranChangeSetsBefore = phase == Phase.UPDATE_FROM_EMPTY ? 0 : countRanChangeSets(keepAlive);
+
+			final long start = System.nanoTime();
+			final Liquibase liquibase = initLiquibase(basedir, url);
+			try
+			{
+				switch (phase)
+				{
+				case UPDATE_FROM_EMPTY:
+				case NO_OP_UPDATE:
+					liquibase.update(new Contexts());
+					break;
+				case ROLLBACK_TO_EARLY_TAG:
+					liquibase.rollback(EARLY_TAG, new Contexts());
+					break;
+				}
+				measurement.nanos = System.nanoTime() - start;
+			}
+			finally
+			{
+				liquibase.getDatabase().close();
+			}
+
+			final int ranChangeSetsAfter = countRanChangeSets(keepAlive);
+			measurement.changeSets = phase == Phase.NO_OP_UPDATE ? ranChangeSetsAfter : Math.abs(ranChangeSetsAfter - ranChangeSetsBefore);
+
+			return measurement;
+		}
+		finally
+		{
+			keepAlive.close();
+		}
+	}
+
+	private static Liquibase initLiquibase(final Path basedir, final String url) throws LiquibaseException, SQLException
+	{
+		final FileSystemResourceAccessor resourceAccessor = new FileSystemResourceAccessor(basedir.toAbsolutePath().toString());
+		final Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(DriverManager.getConnection(url)));
+		return new Liquibase(MASTER_CHANGELOG, resourceAccessor, database);
+	}
+
+	private static int countRanChangeSets(final Connection connection) throws SQLException
+	{
+		final Statement statement = connection.createStatement();
+		try
+		{
+			final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM DATABASECHANGELOG");
+			resultSet.next();
+			return resultSet.getInt(1);
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	private static Path writeChangeLog(final int releases, final boolean withEnversTemplate) throws IOException
+	{
+		final StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\"?>\n");
+		xml.append("<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.6.xsd\">\n");
+
+		xml.append("\t<changeSet id=\"Setup 1\" author=\"JUnit\">\n");
+		xml.append("\t\t<createSequence sequenceName=\"HIBERNATE_SEQUENCE\"/>\n");
+		xml.append("\t</changeSet>\n");
+		xml.append("\t<changeSet id=\"Setup 2\" author=\"JUnit\">\n");
+		xml.append("\t\t<createTable tableName=\"REVINFO\">\n");
+		xml.append("\t\t\t<column name=\"ID\" type=\"BIGINT\"><constraints primaryKey=\"true\"/></column>\n");
+		xml.append("\t\t\t<column name=\"REVTSTMP\" type=\"TIMESTAMP\"/>\n");
+		xml.append("\t\t\t<column name=\"USERNAME\" type=\"VARCHAR(255)\"/>\n");
+		xml.append("\t\t</createTable>\n");
+		xml.append("\t</changeSet>\n");
+		xml.append("\t<changeSet id=\"Setup 3\" author=\"JUnit\">\n");
+		xml.append("\t\t<createTable tableName=\"TEST\">\n");
+		xml.append("\t\t\t<column name=\"ID\" type=\"VARCHAR(255)\"><constraints primaryKey=\"true\"/></column>\n");
+		xml.append("\t\t</createTable>\n");
+		xml.append("\t</changeSet>\n");
+		xml.append("\t<changeSet id=\"Setup 4\" author=\"JUnit\">\n");
+		xml.append("\t\t<createTable tableName=\"TEST_AUD\">\n");
+		xml.append("\t\t\t<column name=\"ID\" type=\"VARCHAR(255)\"/>\n");
+		xml.append("\t\t\t<column name=\"REV\" type=\"BIGINT\"/>\n");
+		xml.append("\t\t\t<column name=\"REVTYPE\" type=\"TINYINT\"/>\n");
+		xml.append("\t\t</createTable>\n");
+		xml.append("\t</changeSet>\n");
+
+		if (withEnversTemplate)
+		{
+			appendRevisionChangeSet(xml, "@CURRENT_VERSION@", "liquibase-envers-support plugin");
+		}
+
+		for (int release = 1; release <= releases + 1; release++)
+		{
+			appendDataChangeSet(xml, "Test " + release);
+			if (release <= releases)
+			{
+				xml.append("\t<changeSet id=\"Tag ").append(release).append(".0.0\" author=\"liquibase-db-release\">\n");
+				xml.append("\t\t<tagDatabase tag=\"").append(release).append(".0.0\"/>\n");
+				xml.append("\t</changeSet>\n");
+				if (!withEnversTemplate)
+				{
+					// Write out what the plugin would have added after this tag
+					appendRevisionChangeSet(xml, release < releases ? (release + 1) + ".0.0" : "develop", "JUnit");
+				}
+			}
+		}
+
+		xml.append("</databaseChangeLog>\n");
+
+		final Path dir = Files.createTempDirectory(EnversSupportThroughputIT.class.getSimpleName());
+		Files.write(dir.resolve(MASTER_CHANGELOG), xml.toString().getBytes(StandardCharsets.UTF_8));
+		CHANGELOG_DIRS.add(dir);
+		return dir;
+	}
+
+	private static void appendRevisionChangeSet(final StringBuilder xml, final String version, final String author)
+	{
+		xml.append("\t<changeSet id=\"Envers revision for version ").append(version).append("\" author=\"").append(author).append("\">\n");
+		xml.append("\t\t<insert tableName=\"REVINFO\">\n");
+		xml.append("\t\t\t<column name=\"ID\" valueComputed=\"NEXT VALUE FOR HIBERNATE_SEQUENCE\"/>\n");
+		xml.append("\t\t\t<column name=\"REVTSTMP\" valueComputed=\"CURRENT_TIMESTAMP\"/>\n");
+		xml.append("\t\t\t<column name=\"USERNAME\" value=\"Liquibase (version ").append(version).append(")\"/>\n");
+		xml.append("\t\t</insert>\n");
+		xml.append("\t\t<rollback>\n");
+		xml.append("\t\t\t<delete tableName=\"REVINFO\">\n");
+		xml.append("\t\t\t\t<where>ID = (SELECT MAX(ID) FROM REVINFO WHERE USERNAME = 'Liquibase (version ").append(version).append(")')</where>\n");
+		xml.append("\t\t\t</delete>\n");
+		xml.append("\t\t</rollback>\n");
+		xml.append("\t</changeSet>\n");
+	}
+
+	private static void appendDataChangeSet(final StringBuilder xml, final String id)
+	{
+		xml.append("\t<changeSet id=\"").append(id).append("\" author=\"JUnit\">\n");
+		xml.append("\t\t<insert tableName=\"TEST\">\n");
+		xml.append("\t\t\t<column name=\"ID\" value=\"").append(id).append("\"/>\n");
+		xml.append("\t\t</insert>\n");
+		xml.append("\t\t<insert tableName=\"TEST_AUD\">\n");
+		xml.append("\t\t\t<column name=\"ID\" value=\"").append(id).append("\"/>\n");
+		xml.append("\t\t\t<column name=\"REV\" valueComputed=\"(SELECT MAX(ID) FROM REVINFO)\"/>\n");
+		xml.append("\t\t\t<column name=\"REVTYPE\" valueNumeric=\"0\"/>\n");
+		xml.append("\t\t</insert>\n");
+		xml.append("\t\t<rollback>\n");
+		xml.append("\t\t\t<delete tableName=\"TEST_AUD\">\n");
+		xml.append("\t\t\t\t<where>ID = '").append(id).append("'</where>\n");
+		xml.append("\t\t\t</delete>\n");
+		xml.append("\t\t\t<delete tableName=\"TEST\">\n");
+		xml.append("\t\t\t\t<where>ID = '").append(id).append("'</where>\n");
+		xml.append("\t\t\t</delete>\n");
+		xml.append("\t\t</rollback>\n");
+		xml.append("\t</changeSet>\n");
+	}
+}
@@ -0,0 +1,182 @@
+package org.jurr.liquibase.envers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.OfflineConnection;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.FileSystemResourceAccessor;
+import org.junit.Test;
+
+public class ReleaseTimingChangeExecListenerTest
+{
+	@Test
+	public void testWithDatabase() throws Exception
+	{
+		final String url = "jdbc:h2:mem:" + ReleaseTimingChangeExecListenerTest.class.getSimpleName();
+		final Connection connection = DriverManager.getConnection(url);
+		try
+		{
+			final FileSystemResourceAccessor resourceAccessor = new FileSystemResourceAccessor(Paths.get("src/test/resources/testWithReleaseTiming").toAbsolutePath().toString());
+			final Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(DriverManager.getConnection(url)));
+			final Liquibase liquibase = new Liquibase("master.xml", resourceAccessor, database);
+			final ReleaseTimingChangeExecListener listener = new ReleaseTimingChangeExecListener();
+			liquibase.setChangeExecListener(listener);
+
+			CountingCustomTaskChange.executions = 0;
+			liquibase.update(new Contexts("core"));
+
+			// Counting statements does not execute the custom task a second time
+			assertEquals(1, CountingCustomTaskChange.executions);
+
+			// Nothing is written during the update, so the transactions of the update are left alone
+			assertTrue(!hasTimingTable(connection));
+			listener.flush(database);
+
+			assertReleaseTimings(listener.getReleaseTimings());
+
+			final Statement statement = connection.createStatement();
+			try
+			{
+				final ResultSet resultSet = statement.executeQuery("SELECT CURRENT_VERSION, PREVIOUS_VERSION, CHANGESETS, STATEMENTS, DURATION_MS FROM " + ReleaseTimingChangeExecListener.DEFAULT_TABLE_NAME + " ORDER BY DATEEXECUTED");
+				assertTrue(resultSet.next());
+				assertEquals("2.0.0", resultSet.getString(1));
+				assertEquals("1.0.0", resultSet.getString(2));
+				assertEquals(5, resultSet.getInt(3));
+				assertEquals(4, resultSet.getInt(4));
+				assertTrue(resultSet.getLong(5) >= 0);
+				assertTrue(resultSet.next());
+				assertEquals("develop", resultSet.getString(1));
+				assertEquals("2.0.1", resultSet.getString(2));
+				assertEquals(2, resultSet.getInt(3));
+				assertEquals(2, resultSet.getInt(4));
+				assertTrue(!resultSet.next());
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testOffline() throws Exception
+	{
+		final Path databaseChangelogCsvFile = Files.createTempFile(ReleaseTimingChangeExecListenerTest.class.getSimpleName(), ".JUNIT.csv");
+		final Path releaseTimingCsvFile = Files.createTempFile(ReleaseTimingChangeExecListenerTest.class.getSimpleName(), ".timing.csv");
+
+		final FileSystemResourceAccessor resourceAccessor = new FileSystemResourceAccessor(Paths.get("src/test/resources/testWithReleaseTiming").toAbsolutePath().toString());
+		final Liquibase liquibase = new Liquibase("master.xml", resourceAccessor, new OfflineConnection("offline:postgresql?changeLogFile=" + databaseChangelogCsvFile.toAbsolutePath(), resourceAccessor));
+		final ReleaseTimingChangeExecListener listener = new ReleaseTimingChangeExecListener(ReleaseTimingChangeExecListener.DEFAULT_TABLE_NAME, releaseTimingCsvFile.toFile());
+		liquibase.setChangeExecListener(listener);
+
+		final StringWriter output = new StringWriter();
+		liquibase.update(new Contexts("core"), output);
+		listener.flush(liquibase.getDatabase());
+
+		assertReleaseTimings(listener.getReleaseTimings());
+
+		// The counted statements still end up in the generated SQL, the timings go to the file instead
+		assertTrue(output.toString().contains("'Test 2a'"));
+		assertTrue(!output.toString().contains(ReleaseTimingChangeExecListener.DEFAULT_TABLE_NAME));
+
+		final List<String> lines = Files.readAllLines(releaseTimingCsvFile, StandardCharsets.UTF_8);
+		assertEquals("CURRENT_VERSION,PREVIOUS_VERSION,DATEEXECUTED,DURATION_MS,CHANGESETS,STATEMENTS", lines.get(0));
+		assertTrue(lines.get(1).startsWith("2.0.0,1.0.0,"));
+		assertTrue(lines.get(1).endsWith(",5,4"));
+		assertTrue(lines.get(2).startsWith("develop,2.0.1,"));
+		assertTrue(lines.get(2).endsWith(",2,2"));
+		assertEquals(3, lines.size());
+	}
+
+	@Test
+	public void testUpdateSqlWithDatabase() throws Exception
+	{
+		final Path releaseTimingCsvFile = Files.createTempFile(ReleaseTimingChangeExecListenerTest.class.getSimpleName(), ".timing.csv");
+
+		final String url = "jdbc:h2:mem:" + ReleaseTimingChangeExecListenerTest.class.getSimpleName() + "UpdateSql";
+		final Connection connection = DriverManager.getConnection(url);
+		try
+		{
+			final FileSystemResourceAccessor resourceAccessor = new FileSystemResourceAccessor(Paths.get("src/test/resources/testWithReleaseTiming").toAbsolutePath().toString());
+			final Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(DriverManager.getConnection(url)));
+			final Liquibase liquibase = new Liquibase("master.xml", resourceAccessor, database);
+			final ReleaseTimingChangeExecListener listener = new ReleaseTimingChangeExecListener(ReleaseTimingChangeExecListener.DEFAULT_TABLE_NAME, releaseTimingCsvFile.toFile());
+			liquibase.setChangeExecListener(listener);
+
+			final StringWriter output = new StringWriter();
+			liquibase.update(new Contexts("core"), output);
+			listener.flush(database);
+
+			assertReleaseTimings(listener.getReleaseTimings());
+
+			// Only generating SQL leaves the database alone, so the timings go to the file, not to the table or into the generated SQL
+			assertTrue(output.toString().contains("'Test 2a'"));
+			assertTrue(!output.toString().contains(ReleaseTimingChangeExecListener.DEFAULT_TABLE_NAME));
+			assertTrue(!hasTimingTable(connection));
+
+			final List<String> lines = Files.readAllLines(releaseTimingCsvFile, StandardCharsets.UTF_8);
+			assertTrue(lines.get(1).startsWith("2.0.0,1.0.0,"));
+			assertTrue(lines.get(2).startsWith("develop,2.0.1,"));
+			assertEquals(3, lines.size());
+
+			database.close();
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	private boolean hasTimingTable(final Connection connection) throws Exception
+	{
+		final ResultSet tables = connection.getMetaData().getTables(null, null, ReleaseTimingChangeExecListener.DEFAULT_TABLE_NAME, null);
+		try
+		{
+			return tables.next();
+		}
+		finally
+		{
+			tables.close();
+		}
+	}
+
+	/**
+	 * The release window of 2.0.0 consists of the Envers changeSet, "Test 2a" with two inserts, "Test 2c", the custom task "Test 2d" and the tag.
+	 * Liquibase tags the database while marking the tag changeSet as ran, and the custom task executes no statements, so neither counts as a statement.
+	 * In the release window of 2.0.1 the Envers changeSet is skipped because the tag follows it directly, so only the tag runs and the window is not recorded.
+	 * The changeSets before the first Envers changeSet are not part of any release window.
+	 */
+	private void assertReleaseTimings(final List<ReleaseTimingChangeExecListener.ReleaseTiming> releaseTimings)
+	{
+		assertEquals("2.0.0", releaseTimings.get(0).getCurrentVersion());
+		assertEquals("1.0.0", releaseTimings.get(0).getPreviousVersion());
+		assertEquals(5, releaseTimings.get(0).getChangeSetCount());
+		assertEquals(4, releaseTimings.get(0).getStatementCount());
+		assertEquals("develop", releaseTimings.get(1).getCurrentVersion());
+		assertEquals("2.0.1", releaseTimings.get(1).getPreviousVersion());
+		assertEquals(2, releaseTimings.get(1).getChangeSetCount());
+		assertEquals(2, releaseTimings.get(1).getStatementCount());
+		assertEquals(2, releaseTimings.size());
+	}
+}